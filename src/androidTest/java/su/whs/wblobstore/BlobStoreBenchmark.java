@@ -0,0 +1,273 @@
+package su.whs.wblobstore;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Micro benchmarks for BlobStore hot paths
+ *
+ * runs on device/emulator, because BlobStore depends on android sqlite;
+ * every test uses fresh store in throwaway directory, removed in tearDown(),
+ * fixed seed and fixed iteration counts keeps runs comparable.
+ *
+ * results are appended as 'name,ns_per_op' lines to bsbench-results.csv in
+ * external files dir (and logged with tag 'BSBench'); when bsbench-baseline.csv
+ * with same format is present there, result slower than baseline * TOLERANCE fails the test
+ */
+public class BlobStoreBenchmark extends ApplicationTestCase<Application> {
+    private static final String TAG="BSBench";
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 2000;
+    private static final int THREADS = 4;
+    private static final long SEED = 0x5eed;
+    private static final int[] BLOB_SIZES = new int[] { 1024, 16*1024, 256*1024, 1024*1024 };
+    private static final double TOLERANCE = 1.5;
+    private static final String RESULTS = "bsbench-results.csv";
+    private static final String BASELINE = "bsbench-baseline.csv";
+
+    private BlobStore mBlobStore;
+    private File mRoot;
+    private String mPrefix;
+    private HashMap<String,Long> mBaseline;
+
+    public BlobStoreBenchmark() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        createApplication();
+        mRoot = new File(getContext().getCacheDir(), "bsbench-" + System.nanoTime());
+        mBlobStore = new BlobStore(getContext(),
+                new File(mRoot, ".bstore"), new File(mRoot, ".bcache"), new File(mRoot, ".databases"), 0);
+        mPrefix = "http://bench.local/";
+        mBaseline = readBaseline();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBlobStore.getDatabase().close();
+        deleteRecursive(mRoot);
+        super.tearDown();
+    }
+
+    public void testGetKey() throws Exception {
+        final String url = mPrefix + "getKey";
+        report("getKey", measure(new Op() {
+            @Override
+            public void run(int i) {
+                mBlobStore.getKey(url);
+            }
+        }));
+    }
+
+    public void testKeyLoad() throws Exception {
+        final String url = mPrefix + "load";
+        fill(url, 1024);
+        final BlobStore.Key k = mBlobStore.getKey(url);
+        report("Key.Load", measure(new Op() {
+            @Override
+            public void run(int i) {
+                k.Load();
+            }
+        }));
+    }
+
+    public void testCachedStreamHit() throws Exception {
+        final String url = mPrefix + "hit";
+        fill(url, 1024);
+        report("getCachedStream(hit)", measure(new Op() {
+            @Override
+            public void run(int i) throws IOException {
+                InputStream is = mBlobStore.getCachedStream(url);
+                if (is == null) throw new IOException("unexpected miss");
+                is.close();
+            }
+        }));
+    }
+
+    public void testCachedStreamMiss() throws Exception {
+        final String url = mPrefix + "miss";
+        report("getCachedStream(miss)", measure(new Op() {
+            @Override
+            public void run(int i) throws IOException {
+                InputStream is = mBlobStore.getCachedStream(url);
+                if (is != null) throw new IOException("unexpected hit");
+            }
+        }));
+    }
+
+    public void testProperties() throws Exception {
+        final String url = mPrefix + "props";
+        fill(url, 16);
+        report("attachProperty", measure(new Op() {
+            @Override
+            public void run(int i) throws IOException {
+                mBlobStore.attachProperty(url, "Content-Length", String.valueOf(i));
+            }
+        }));
+        report("getAttachedProperty", measure(new Op() {
+            @Override
+            public void run(int i) {
+                mBlobStore.getAttachedProperty(url, "Content-Length");
+            }
+        }));
+    }
+
+    public void testWriteThroughput() throws Exception {
+        for (int size : BLOB_SIZES) {
+            byte[] data = payload(size);
+            int count = Math.max(4, (4 * 1024 * 1024) / size);
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                OutputStream out = mBlobStore.openCacheStream(mPrefix + "write/" + size + "/" + i);
+                out.write(data);
+                out.close();
+            }
+            long elapsed = System.nanoTime() - start;
+            double mbs = ((double) size * count / (1024 * 1024)) / (elapsed / 1e9);
+            Log.i(TAG, String.format("openCacheStream(%d): %.2f MB/s", size, mbs));
+            report("openCacheStream(" + size + ")", elapsed / count);
+        }
+    }
+
+    public void testDeleteSubtree() throws Exception {
+        final int childs = 16;
+        final int rounds = 100;
+        long total = 0;
+        for (int r = 0; r < rounds; r++) {
+            String url = mPrefix + "delete/" + r;
+            fill(url, 1024);
+            BlobStore.Key k = mBlobStore.getKey(url);
+            k.Load();
+            for (int i = 0; i < childs; i++) {
+                k.Add("p" + i, "value" + i).Commit();
+            }
+            k.Commit();
+            assertEquals(childs, k.Childs().size());
+            long start = System.nanoTime();
+            k.Delete();
+            total += System.nanoTime() - start;
+        }
+        report("Key.Delete(" + childs + " childs)", total / rounds);
+    }
+
+    public void testContention() throws Exception {
+        final String[] urls = new String[64];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = mPrefix + "contention/" + i;
+            fill(urls[i], 1024);
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        for (int t = 0; t < THREADS; t++) {
+            final Random rnd = new Random(SEED + t);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long begin = System.nanoTime();
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            InputStream is = mBlobStore.getCachedStream(urls[rnd.nextInt(urls.length)]);
+                            if (is == null) failed.incrementAndGet();
+                            else is.close();
+                        }
+                        total.addAndGet(System.nanoTime() - begin);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assertEquals(0, failed.get());
+        report("getCachedStream(" + THREADS + " threads)", total.get() / ((long) THREADS * ITERATIONS));
+    }
+
+    private interface Op {
+        void run(int i) throws Exception;
+    }
+
+    private long measure(Op op) throws Exception {
+        for (int i = 0; i < WARMUP; i++) op.run(i);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) op.run(i);
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private void report(String name, long nsPerOp) throws IOException {
+        Log.i(TAG, String.format("%s: %d ns/op", name, nsPerOp));
+        FileWriter w = new FileWriter(new File(getContext().getExternalFilesDir(null), RESULTS), true);
+        try {
+            w.write(name + "," + nsPerOp + "\n");
+        } finally {
+            w.close();
+        }
+        Long baseline = mBaseline.get(name);
+        if (baseline != null) {
+            assertTrue(String.format("%s regressed: %d ns/op, baseline %d ns/op", name, nsPerOp, baseline),
+                    nsPerOp <= baseline * TOLERANCE);
+        }
+    }
+
+    private HashMap<String,Long> readBaseline() throws IOException {
+        HashMap<String,Long> result = new HashMap<String,Long>();
+        File f = new File(getContext().getExternalFilesDir(null), BASELINE);
+        if (!f.exists()) return result;
+        BufferedReader r = new BufferedReader(new FileReader(f));
+        try {
+            for (String line = r.readLine(); line != null; line = r.readLine()) {
+                int comma = line.lastIndexOf(',');
+                if (comma < 1) continue;
+                try {
+                    result.put(line.substring(0, comma), Long.parseLong(line.substring(comma + 1).trim()));
+                } catch (NumberFormatException e) {
+                    // header or comment line
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return result;
+    }
+
+    private static void deleteRecursive(File f) {
+        File[] childs = f.listFiles();
+        if (childs != null) {
+            for (File c : childs) deleteRecursive(c);
+        }
+        f.delete();
+    }
+
+    private void fill(String url, int size) throws IOException {
+        OutputStream out = mBlobStore.openCacheStream(url);
+        out.write(payload(size));
+        out.close();
+    }
+
+    private static byte[] payload(int size) {
+        byte[] data = new byte[size];
+        new Random(SEED).nextBytes(data);
+        return data;
+    }
+}
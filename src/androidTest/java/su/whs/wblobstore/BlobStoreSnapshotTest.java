@@ -0,0 +1,152 @@
+package su.whs.wblobstore;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * export part of store, import into another store and compare content
+ */
+public class BlobStoreSnapshotTest extends ApplicationTestCase<Application> {
+    private static final String PREFIX = "http://snapshot.local/";
+    private static final String URL_A = PREFIX + "a";
+    private static final String URL_B = PREFIX + "b";
+    private static final String URL_OTHER = "http://other.local/c";
+
+    private File mRoot;
+    private BlobStore mSource;
+    private BlobStore mTarget;
+
+    public BlobStoreSnapshotTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        createApplication();
+        mRoot = new File(getContext().getCacheDir(), "bssnapshot-" + System.nanoTime());
+        mSource = open("source");
+        mTarget = open("target");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSource.getDatabase().close();
+        mTarget.getDatabase().close();
+        deleteRecursive(mRoot);
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        byte[] a = random(200 * 1024, 1);
+        byte[] b = random(10, 2);
+        write(mSource, URL_A, a);
+        write(mSource, URL_B, b);
+        write(mSource, URL_OTHER, random(16, 3));
+        mSource.attachProperty(URL_A, "Content-Type", "image/png");
+        mSource.attachProperty(URL_B, "Content-Type", "text/plain");
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        assertEquals(2, mSource.exportSnapshot(archive, PREFIX));
+        // existing key is replaced by imported one, new row reuses its _id and blob name
+        write(mTarget, URL_A, random(32, 4));
+        assertEquals(2, mTarget.importSnapshot(new ByteArrayInputStream(archive.toByteArray())));
+
+        assertTrue(Arrays.equals(a, read(mTarget.getCachedStream(URL_A))));
+        assertTrue(Arrays.equals(b, read(mTarget.getCachedStream(URL_B))));
+        assertEquals("image/png", mTarget.getAttachedProperty(URL_A, "Content-Type"));
+        assertEquals("text/plain", mTarget.getAttachedProperty(URL_B, "Content-Type"));
+        assertNull(mTarget.getCachedStream(URL_OTHER));
+        assertEquals(2, blobCount(mTarget));
+    }
+
+    public void testTruncatedArchiveKeepsExistingContent() throws Exception {
+        write(mSource, URL_A, random(100 * 1024, 5));
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        assertEquals(1, mSource.exportSnapshot(archive, PREFIX));
+        byte[] existing = random(64, 6);
+        write(mTarget, URL_A, existing);
+        mTarget.attachProperty(URL_A, "Content-Type", "text/plain");
+
+        byte[] full = archive.toByteArray();
+        assertImportFails(Arrays.copyOf(full, full.length / 2));
+        // unknown end marker
+        byte[] corrupted = full.clone();
+        corrupted[corrupted.length - 1] = 7;
+        assertImportFails(corrupted);
+
+        assertTrue(Arrays.equals(existing, read(mTarget.getCachedStream(URL_A))));
+        assertEquals("text/plain", mTarget.getAttachedProperty(URL_A, "Content-Type"));
+        assertEquals(1, blobCount(mTarget));
+    }
+
+    private void assertImportFails(byte[] archive) {
+        try {
+            mTarget.importSnapshot(new ByteArrayInputStream(archive));
+            fail("import of broken archive succeeded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private BlobStore open(String name) {
+        File base = new File(mRoot, name);
+        return new BlobStore(getContext(),
+                new File(base, ".bstore"),
+                new File(base, ".bcache"),
+                new File(base, ".databases"),
+                0);
+    }
+
+    private static void write(BlobStore bs, String url, byte[] data) throws IOException {
+        bs.removeKey(url);
+        OutputStream out = bs.openCacheStream(url);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        assertNotNull(is);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try {
+            for (int read = is.read(buffer); read > -1; read = is.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private int blobCount(BlobStore bs) {
+        File[] files = new File(new File(mRoot, bs == mSource ? "source" : "target"), ".bcache").listFiles();
+        return files == null ? 0 : files.length;
+    }
+
+    private static void deleteRecursive(File f) {
+        File[] childs = f.listFiles();
+        if (childs != null) {
+            for (File c : childs) deleteRecursive(c);
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,172 @@
+package su.whs.wblobstore;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ApplicationTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * open schema v1 database (as created by first release) and check migration to current version
+ */
+public class BlobStoreUpgradeTest extends ApplicationTestCase<Application> {
+    private static final String URL_A = "http://upgrade.local/a";
+    private static final String URL_B = "http://upgrade.local/b";
+
+    private File mRoot;
+    private File mCacheDir;
+    private File mDatabaseDir;
+
+    public BlobStoreUpgradeTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        createApplication();
+        mRoot = new File(getContext().getCacheDir(), "bsupgrade-" + System.nanoTime());
+        mCacheDir = new File(mRoot, ".bcache");
+        mDatabaseDir = new File(mRoot, ".databases");
+        assertTrue(mCacheDir.mkdirs());
+        assertTrue(mDatabaseDir.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursive(mRoot);
+        super.tearDown();
+    }
+
+    public void testUpgradeFromV1() throws Exception {
+        SQLiteDatabase v1 = SQLiteDatabase.openOrCreateDatabase(new File(mDatabaseDir, "blobstore.sqlite").getAbsolutePath(), null);
+        v1.execSQL("create table pairs(_id integer primary key, parent integer default 0, keyhash integer, keyname text, value text, flags integer(1), modified integer)");
+        v1.execSQL("create index pairs_idx on pairs(parent,keyhash)");
+        insertV1(v1, 1, 0, URL_A, null, 4);
+        insertV1(v1, 2, 1, "Content-Type", "image/png", 2);
+        // duplicated url, older row with file child and grandchild property
+        insertV1(v1, 3, 0, URL_B, null, 4);
+        insertV1(v1, 4, 3, "thumb", null, 1);
+        insertV1(v1, 5, 4, "Content-Type", "image/jpeg", 2);
+        insertV1(v1, 6, 0, URL_B, null, 4);
+        v1.setVersion(1);
+        v1.close();
+        writeBlob(1, "a");
+        writeBlob(3, "old b");
+        writeBlob(4, "thumb");
+        writeBlob(6, "new b");
+
+        BlobStore bs = new BlobStore(getContext(), new File(mRoot, ".bstore"), mCacheDir, mDatabaseDir, 0);
+        SQLiteDatabase db = bs.getDatabase();
+        assertEquals(4, db.getVersion());
+
+        assertEquals("1,2,6", ids(db));
+        assertFalse(new File(mCacheDir, "3.dat").exists());
+        assertFalse(new File(mCacheDir, "4.dat").exists());
+        assertTrue(new File(mCacheDir, "6.dat").exists());
+
+        Cursor c = db.rawQuery("select keyhash, expires, checksum from pairs where _id=1", null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(BlobStore.keyHash(URL_A), c.getLong(0));
+            assertEquals(0, c.getLong(1));
+            assertTrue(c.isNull(2));
+        } finally {
+            c.close();
+        }
+        c = db.rawQuery("select name from sqlite_master where type='index' and tbl_name='pairs' order by name", null);
+        StringBuilder indexes = new StringBuilder();
+        try {
+            while (c.moveToNext()) indexes.append(c.getString(0)).append(';');
+        } finally {
+            c.close();
+        }
+        assertEquals("pairs_expires_idx;pairs_key_idx;", indexes.toString());
+
+        assertEquals("image/png", bs.getAttachedProperty(URL_A, "Content-Type"));
+        assertEquals("a", read(bs.getCachedStream(URL_A)));
+        assertEquals("new b", read(bs.getCachedStream(URL_B)));
+        db.close();
+    }
+
+    public void testFailedUpgradeKeepsBlobs() throws Exception {
+        SQLiteDatabase v1 = SQLiteDatabase.openOrCreateDatabase(new File(mDatabaseDir, "blobstore.sqlite").getAbsolutePath(), null);
+        // v4 step fails on existing column, whole migration is rolled back
+        v1.execSQL("create table pairs(_id integer primary key, parent integer default 0, keyhash integer, keyname text, value text, flags integer(1), modified integer, checksum integer)");
+        v1.execSQL("create index pairs_idx on pairs(parent,keyhash)");
+        insertV1(v1, 1, 0, URL_B, null, 4);
+        insertV1(v1, 2, 0, URL_B, null, 4);
+        v1.setVersion(1);
+        v1.close();
+        writeBlob(1, "old b");
+        writeBlob(2, "new b");
+
+        BlobStore bs = new BlobStore(getContext(), new File(mRoot, ".bstore"), mCacheDir, mDatabaseDir, 0);
+        assertFalse(bs.isAvailable());
+        assertNull(bs.getCachedStream(URL_B));
+
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(new File(mDatabaseDir, "blobstore.sqlite").getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY);
+        try {
+            assertEquals(1, db.getVersion());
+            assertEquals("1,2", ids(db));
+        } finally {
+            db.close();
+        }
+        assertTrue(new File(mCacheDir, "1.dat").exists());
+        assertTrue(new File(mCacheDir, "2.dat").exists());
+    }
+
+    private static void insertV1(SQLiteDatabase db, long id, long parent, String name, String value, int flags) {
+        db.execSQL("insert into pairs(_id,parent,keyhash,keyname,value,flags,modified) values (?,?,?,?,?,?,?)",
+                new Object[]{id, parent, name.hashCode(), name, value, flags, System.currentTimeMillis()});
+    }
+
+    private void writeBlob(long id, String data) throws IOException {
+        FileOutputStream out = new FileOutputStream(new File(mCacheDir, id + ".dat"));
+        try {
+            out.write(data.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String ids(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("select _id from pairs order by _id", null);
+        StringBuilder sb = new StringBuilder();
+        try {
+            while (c.moveToNext()) {
+                if (sb.length() > 0) sb.append(',');
+                sb.append(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return sb.toString();
+    }
+
+    private static String read(InputStream is) throws IOException {
+        assertNotNull(is);
+        byte[] buffer = new byte[256];
+        StringBuilder sb = new StringBuilder();
+        try {
+            for (int read = is.read(buffer); read > -1; read = is.read(buffer)) {
+                sb.append(new String(buffer, 0, read, "UTF-8"));
+            }
+        } finally {
+            is.close();
+        }
+        return sb.toString();
+    }
+
+    private static void deleteRecursive(File f) {
+        File[] childs = f.listFiles();
+        if (childs != null) {
+            for (File c : childs) deleteRecursive(c);
+        }
+        f.delete();
+    }
+}
@@ -1,25 +1,39 @@
 package su.whs.wblobstore;
 
+import android.content.ComponentCallbacks2;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
 
 /**
  * Created by igor n. boulliev on 31.12.15.
@@ -32,6 +46,7 @@ public class BlobStore {
         PATH
     }
 
+    private static final String TAG="BlobStore";
     private Context mContext;
     private File mFileStoreDir;
     private File mCacheStoreDir;
@@ -41,10 +56,26 @@ public class BlobStore {
     private boolean mFirstRun = false;
     private DatabaseHelper mDatabaseHelper;
     private File mDataBaseDir;
+    private int mFanOut = 0;
     private WeakHashMap<String,Key> mKeysCache = new WeakHashMap<String,Key>();
+    private final BlobStoreMetrics mMetrics = new BlobStoreMetrics();
+    private final BufferPool mBufferPool = new BufferPool();
+    private Timer mWorker = null;
+    private TimerTask mReaperTask = null;
+    private final AtomicBoolean mTrimScheduled = new AtomicBoolean(false);
+    private final Object mStatementLock = new Object();
+    private static final long FREE_SPACE_CHECK_INTERVAL = 30000;
+    private static final int TRIM_BATCH = 64;
+    private volatile long mMinFreeSpace = 0;
+    private volatile boolean mVerifyOnRead = false;
+    private long mLastFreeSpaceCheck = 0;
+    private SQLiteStatement mKeyIdStatement = null;
+    private SQLiteStatement mModifiedStatement = null;
+    private SQLiteDatabase mKeyIdStatementDb = null;
 
     public BlobStore(Context context, LOCATION location, String path) {
         mContext = context;
+        mBufferPool.setMetrics(mMetrics);
         SharedPreferences prefs = context.getSharedPreferences("whs.blobstore.cfg",Context.MODE_PRIVATE);
         String migrateFromPath = null;
         boolean migrateRequired = false;
@@ -98,6 +129,40 @@ public class BlobStore {
 
     }
 
+    /**
+     * store in explicit directories, location preferences are not used;
+     * when directories or database can't be opened (for example unmounted volume)
+     * store is not available: lookups always miss and writes throw, see {@link #isAvailable()}
+     * @param fanOut number of blob subdirectories, 0 - flat directory
+     */
+    BlobStore(Context context, File fileStoreDir, File cacheStoreDir, File databaseDir, int fanOut) {
+        mContext = context;
+        mBufferPool.setMetrics(mMetrics);
+        mLocation = LOCATION.PATH;
+        mFileStoreDir = fileStoreDir;
+        mCacheStoreDir = cacheStoreDir;
+        mDataBaseDir = databaseDir;
+        mFanOut = fanOut;
+        for (File dir : new File[] { mFileStoreDir, mCacheStoreDir, mDataBaseDir }) {
+            if (!dir.exists() && !dir.mkdirs()) {
+                mStateNominal = false;
+            }
+        }
+        if (!mStateNominal) {
+            Log.w(TAG, "blob store directories not available: " + mDataBaseDir);
+            return;
+        }
+        try {
+            // helper opens (and migrates) database in constructor
+            DatabaseHelper helper = getDatabaseHelper();
+            helper.getWritableDatabase();
+            mDatabaseHelper = helper;
+        } catch (RuntimeException e) {
+            // SQLiteException for unmounted or read-only volume, any exception from failed migration
+            Log.w(TAG, "blob store database not available: " + mDataBaseDir + " " + e);
+        }
+    }
+
     protected void migrateBlobStore(LOCATION newLocation, String newPath, SharedPreferences prefs) {
         throw new IllegalStateException("migration not implemented yet");
     }
@@ -175,17 +240,39 @@ public class BlobStore {
     }
 
     public Context getContext() { return mContext; }
+    public BlobStoreMetrics getMetrics() { return mMetrics; }
+    public BufferPool getBufferPool() { return mBufferPool; }
+
+    /**
+     * @return false when store directories or database could not be opened (for example unmounted volume)
+     */
+    public boolean isAvailable() { return mDatabaseHelper != null; }
 
 
+    /**
+     * expired keys are reported as miss, they are deleted by {@link #purgeExpired()}
+     * (expiry reaper) or replaced by next {@link #openCacheStream(String, long)}
+     */
     public InputStream getCachedStream(String url) {
+        long start = mMetrics.start();
         Key k = getKey(url);
         if (k.Load()) {
+            if (k.isExpired()) {
+                mMetrics.increment(BlobStoreMetrics.Counter.LOOKUP_MISS);
+                mMetrics.stop(BlobStoreMetrics.Timer.LOOKUP, start);
+                return null;
+            }
             try {
-                return k.Get();
+                InputStream is = k.Get();
+                mMetrics.increment(BlobStoreMetrics.Counter.LOOKUP_HIT);
+                mMetrics.stop(BlobStoreMetrics.Timer.LOOKUP, start);
+                return mMetrics.countBytes(is, BlobStoreMetrics.Counter.BYTES_FROM_CACHE);
             } catch (FileNotFoundException e) {
 
             }
         }
+        mMetrics.increment(BlobStoreMetrics.Counter.LOOKUP_MISS);
+        mMetrics.stop(BlobStoreMetrics.Timer.LOOKUP, start);
         return null;
     }
 
@@ -208,21 +295,51 @@ public class BlobStore {
         if (k.mName==null) {
             Log.e("BS","key name are null!");
         }
-        if (k.Load())
+        if (k.Load()) {
+            long start = mMetrics.start();
             k.Delete();
+            mMetrics.increment(BlobStoreMetrics.Counter.DELETE);
+            mMetrics.stop(BlobStoreMetrics.Timer.DELETE, start);
+        }
     }
 
 
     public OutputStream openCacheStream(String url) throws IOException {
+        return openCacheStream(url, 0);
+    }
+
+    /**
+     * @param ttl time to live in milliseconds, 0 - never expires
+     */
+    public OutputStream openCacheStream(String url, long ttl) throws IOException {
+        if (!isAvailable()) throw new IOException("blob store not available");
+        long start = mMetrics.start();
+        checkFreeSpace();
         Key k = getKey(url);
-        if (!k.Load()) k.Commit();
-        return k.Put();
+        boolean exists = k.Load();
+        if (exists && k.isExpired()) {
+            evictKey(url, k);
+            k = getKey(url);
+            exists = k.Load();
+        }
+        if (exists && (k.mFlags & Key.VALUE_DATA)==0 && blob_file(k).exists()) {
+            // reject before Commit(), stale blob must not get fresh expiry
+            throw new IOException(String.format("blob for '%s' already exists", url));
+        }
+        if (!exists || ttl > 0) {
+            k.setTTL(ttl);
+            k.Commit();
+        }
+        OutputStream out = k.Put();
+        mMetrics.increment(BlobStoreMetrics.Counter.PUT);
+        mMetrics.stop(BlobStoreMetrics.Timer.PUT, start);
+        return out;
     }
 
     public void attachProperty(String url, String name, String value) throws IOException {
         Key k = getKey(url);
         if (k.Load()) {
-            k.Add(name,value);
+            k.Add(name,value).Commit();
             k.Commit();
         }
     }
@@ -238,6 +355,280 @@ public class BlobStore {
         return null;
     }
 
+    /**
+     * delete all expired keys, uses expires index range instead of full table scan
+     * @return number of deleted keys
+     */
+    public int purgeExpired() {
+        if (!isAvailable()) return 0;
+        SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
+        Cursor c = db.query("pairs", Key.PROJECTION, "expires>0 AND expires<? AND parent=0",
+                new String[]{String.valueOf(System.currentTimeMillis())}, null, null, null);
+        int count = 0;
+        try {
+            while (c.moveToNext()) {
+                Key k = new Key(null, c);
+                evictKey(k.GetName(), k);
+                count++;
+            }
+        } finally {
+            c.close();
+        }
+        if (count > 0) Log.d(TAG, String.format("purged %d expired keys", count));
+        return count;
+    }
+
+    /**
+     * run {@link #purgeExpired()} periodically on background daemon thread
+     */
+    public synchronized void startExpiryReaper(long periodMillis) {
+        stopExpiryReaper();
+        mReaperTask = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    purgeExpired();
+                } catch (RuntimeException e) {
+                    // exception thrown from task cancels shared worker timer
+                    Log.e(TAG, "expired keys purge failed:" + e);
+                }
+            }
+        };
+        getWorker().schedule(mReaperTask, periodMillis, periodMillis);
+    }
+
+    public synchronized void stopExpiryReaper() {
+        if (mReaperTask != null) {
+            mReaperTask.cancel();
+            mReaperTask = null;
+        }
+    }
+
+    /**
+     * background daemon thread for reaper and storage trimming
+     */
+    private synchronized Timer getWorker() {
+        if (mWorker == null) mWorker = new Timer("BlobStoreWorker", true);
+        return mWorker;
+    }
+
+    /**
+     * release in-memory state according to memory pressure level,
+     * call from ComponentCallbacks2.onTrimMemory(), returns immediately,
+     * storage trimming (if min free space set) runs on background thread
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            synchronized (this) {
+                mKeysCache.clear();
+            }
+            closeStatements();
+            mBufferPool.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (this) {
+                for (Key k : mKeysCache.values()) {
+                    if (k != null) k.releaseChilds();
+                }
+            }
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            scheduleTrimCache();
+        }
+    }
+
+    /**
+     * check free space on worker thread, onTrimMemory() is delivered on main thread
+     */
+    private void scheduleTrimCache() {
+        if (mMinFreeSpace <= 0 || !mTrimScheduled.compareAndSet(false, true)) return;
+        getWorker().schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    checkFreeSpace(true);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "cache trim failed:" + e);
+                } finally {
+                    mTrimScheduled.set(false);
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * call from ComponentCallbacks.onLowMemory()
+     */
+    public void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    /**
+     * @param bytes cache entries evicted (oldest first) when usable space of cache volume drops below, 0 - disabled
+     */
+    public void setMinFreeSpace(long bytes) { mMinFreeSpace = bytes; }
+    public long getMinFreeSpace() { return mMinFreeSpace; }
+
+    private void checkFreeSpace() {
+        checkFreeSpace(false);
+    }
+
+    private void checkFreeSpace(boolean force) {
+        if (mMinFreeSpace <= 0 || mCacheStoreDir == null) return;
+        long now = System.currentTimeMillis();
+        if (!force && now - mLastFreeSpaceCheck < FREE_SPACE_CHECK_INTERVAL) return;
+        mLastFreeSpaceCheck = now;
+        if (mCacheStoreDir.getUsableSpace() < mMinFreeSpace) {
+            trimCache(mMinFreeSpace);
+        }
+    }
+
+    /**
+     * evict oldest non persistent keys until usable space of cache volume reaches minFreeSpace
+     * @return number of evicted keys
+     */
+    public int trimCache(long minFreeSpace) {
+        if (!isAvailable()) return 0;
+        int count = 0;
+        while (mCacheStoreDir.getUsableSpace() < minFreeSpace) {
+            SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
+            Cursor c = db.query("pairs", Key.PROJECTION, "parent=0 AND (flags&" + Key.VALUE_PERSISTENT + ")=0",
+                    null, null, null, "modified", String.valueOf(TRIM_BATCH));
+            int batch = 0;
+            try {
+                while (c.moveToNext()) {
+                    Key k = new Key(null, c);
+                    evictKey(k.GetName(), k);
+                    batch++;
+                }
+            } finally {
+                c.close();
+            }
+            count += batch;
+            if (batch < TRIM_BATCH) break;
+        }
+        if (count > 0) Log.w(TAG, String.format("low storage, evicted %d keys", count));
+        return count;
+    }
+
+    private void closeStatements() {
+        synchronized (mStatementLock) {
+            if (mKeyIdStatement != null) {
+                mKeyIdStatement.close();
+                mModifiedStatement.close();
+                mKeyIdStatement = null;
+                mModifiedStatement = null;
+                mKeyIdStatementDb = null;
+            }
+        }
+    }
+
+    /**
+     * verify checksum of blob on read, mismatched keys are deleted
+     */
+    public void setVerifyOnRead(boolean verify) { mVerifyOnRead = verify; }
+    public boolean isVerifyOnRead() { return mVerifyOnRead; }
+
+    /**
+     * check all blobs with stored checksum, drop missing and corrupted ones;
+     * reads every blob, run on background thread
+     * @return number of dropped keys
+     */
+    public int scrub() {
+        if (!isAvailable()) return 0;
+        SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
+        Cursor c = db.query("pairs", Key.PROJECTION, "checksum is not null", null, null, null, "_id");
+        ArrayList<Key> corrupted = new ArrayList<Key>();
+        byte[] buffer = mBufferPool.acquire();
+        try {
+            while (c.moveToNext()) {
+                Key k = new Key(null, c);
+                if (!verifyBlob(k, buffer)) corrupted.add(k);
+            }
+        } finally {
+            c.close();
+            mBufferPool.release(buffer);
+        }
+        for (Key k : corrupted) dropCorrupted(k);
+        if (corrupted.size() > 0) Log.w(TAG, String.format("scrub dropped %d corrupted keys", corrupted.size()));
+        return corrupted.size();
+    }
+
+    private boolean verifyBlob(Key k, byte[] buffer) {
+        CRC32 crc = new CRC32();
+        try {
+            InputStream is = new FileInputStream(blob_file(k));
+            try {
+                for (int read = is.read(buffer); read > -1; read = is.read(buffer)) {
+                    crc.update(buffer, 0, read);
+                }
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return crc.getValue() == k.mChecksum;
+    }
+
+    private void dropCorrupted(Key k) {
+        Log.w(TAG, String.format("drop corrupted key '%s'", k.mName));
+        if (k.mParent == null) {
+            // keys from scrub() cursor have no parent instance, row may belong to a child
+            long root = queryRootId(k.mId);
+            synchronized (this) {
+                if (root == k.mId) {
+                    Key cached = mKeysCache.get(k.mName);
+                    if (cached != null && cached.mId == k.mId) mKeysCache.remove(k.mName);
+                } else {
+                    for (Key cached : mKeysCache.values()) {
+                        if (cached != null && cached.mId == root) cached.releaseChilds();
+                    }
+                }
+            }
+        } else {
+            k.mParent.invalidateChild();
+        }
+        k.Delete();
+        mMetrics.increment(BlobStoreMetrics.Counter.CORRUPTED);
+    }
+
+    /**
+     * @return _id of top level key owning row, -1 if row or one of its parents not found
+     */
+    private long queryRootId(long id) {
+        SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
+        while (true) {
+            Cursor c = db.query("pairs", new String[]{"parent"}, "_id=?", new String[]{String.valueOf(id)}, null, null, null);
+            try {
+                if (!c.moveToFirst()) return -1;
+                long parent = c.getLong(0);
+                if (parent == 0) return id;
+                id = parent;
+            } finally {
+                c.close();
+            }
+        }
+    }
+
+    private void storeChecksum(long id, long checksum) {
+        ContentValues cv = new ContentValues();
+        cv.put("checksum", checksum);
+        mDatabaseHelper.getWritableDatabase().update("pairs", cv, "_id=?", new String[]{String.valueOf(id)});
+    }
+
+    private void evictKey(String url, Key k) {
+        synchronized (this) {
+            // keys from cursor are not the cached instances, compare by row id
+            Key cached = mKeysCache.get(url);
+            if (cached != null && cached.mId == k.mId) {
+                mKeysCache.remove(url);
+                cached.releaseChilds();
+            }
+        }
+        k.Delete();
+        mMetrics.increment(BlobStoreMetrics.Counter.EVICTION);
+    }
+
     public String getDatabasesPath() {
         return mDataBaseDir.getAbsolutePath();
     }
@@ -247,37 +638,487 @@ public class BlobStore {
     }
 
 
+    /* Snapshot */
+    private static final int SNAPSHOT_MAGIC = 0x57424c42; // WBLB
+    private static final int SNAPSHOT_VERSION = 1;
+    static final int SNAPSHOT_BATCH = 500;
+    private static final byte SNAPSHOT_KEY = 1;
+    private static final byte SNAPSHOT_END = 0;
+
+    /**
+     * write keys, properties and blobs as single sequential archive
+     * @param prefix export only keys starting with prefix, null - whole store
+     * @return number of exported top level keys
+     */
+    public int exportSnapshot(OutputStream stream, String prefix) throws IOException {
+        DataOutputStream out = beginSnapshot(stream);
+        int count = writeSnapshotKeys(out, prefix);
+        endSnapshot(out);
+        return count;
+    }
+
+    /**
+     * read archive written by {@link #exportSnapshot(OutputStream, String)}, existing keys are replaced;
+     * keys are committed in batches, on error current batch is rolled back (with its files)
+     * and store keeps previous content of its keys, earlier batches stay imported
+     * @return number of imported top level keys
+     */
+    public int importSnapshot(InputStream stream) throws IOException {
+        if (!isAvailable()) throw new IOException("blob store not available");
+        DataInputStream in = openSnapshot(stream);
+        SnapshotImport batch = newSnapshotImport();
+        byte[] buffer = mBufferPool.acquire();
+        int count = 0;
+        try {
+            while (nextSnapshotKey(in)) {
+                batch.importKey(readSnapshotString(in), in, buffer);
+                count++;
+                if (batch.size() >= SNAPSHOT_BATCH) batch.commit();
+            }
+            batch.commit();
+        } finally {
+            batch.close();
+            mBufferPool.release(buffer);
+        }
+        Log.d(TAG, String.format("imported %d keys", count));
+        return count;
+    }
+
+    static DataOutputStream beginSnapshot(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, BufferPool.DEFAULT_BUFFER_SIZE));
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        return out;
+    }
+
+    static void endSnapshot(DataOutputStream out) throws IOException {
+        out.writeByte(SNAPSHOT_END);
+        out.flush();
+    }
+
+    static DataInputStream openSnapshot(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, BufferPool.DEFAULT_BUFFER_SIZE));
+        if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("not a blobstore snapshot");
+        int version = in.readInt();
+        if (version != SNAPSHOT_VERSION) throw new IOException("unsupported snapshot version " + version);
+        return in;
+    }
+
+    /**
+     * @return true when key record follows (its name is next), false at end of archive
+     */
+    static boolean nextSnapshotKey(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        if (tag == SNAPSHOT_KEY) return true;
+        if (tag == SNAPSHOT_END) return false;
+        throw new IOException("corrupted snapshot, unexpected record " + tag);
+    }
+
+    /**
+     * write top level key records (without header and end marker)
+     */
+    int writeSnapshotKeys(DataOutputStream out, String prefix) throws IOException {
+        if (!isAvailable()) return 0;
+        SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
+        Cursor c;
+        if (TextUtils.isEmpty(prefix)) {
+            c = db.query("pairs", Key.PROJECTION, "parent=0", null, null, null, "_id");
+        } else {
+            c = db.query("pairs", Key.PROJECTION, "parent=0 AND substr(keyname,1,?)=?",
+                    new String[]{String.valueOf(prefix.length()), prefix}, null, null, "_id");
+        }
+        int count = 0;
+        byte[] buffer = mBufferPool.acquire();
+        try {
+            while (c.moveToNext()) {
+                out.writeByte(SNAPSHOT_KEY);
+                writeSnapshotKey(out, new Key(null, c), buffer);
+                count++;
+            }
+        } finally {
+            c.close();
+            mBufferPool.release(buffer);
+        }
+        return count;
+    }
+
+    private void writeSnapshotKey(DataOutputStream out, Key k, byte[] buffer) throws IOException {
+        writeSnapshotString(out, k.mName);
+        out.writeInt(k.mFlags);
+        out.writeLong(k.mModified);
+        out.writeLong(k.mExpires);
+        writeSnapshotString(out, (k.mFlags & Key.VALUE_DATA)>0 ? k.mValue : null);
+        File blob = (k.mFlags & Key.VALUE_DATA)==0 ? blob_file(k) : null;
+        if (blob != null && blob.exists()) {
+            long length = blob.length();
+            out.writeLong(length);
+            InputStream is = new FileInputStream(blob);
+            try {
+                while (length > 0) {
+                    int read = is.read(buffer, 0, (int) Math.min(buffer.length, length));
+                    if (read < 0) throw new IOException("blob truncated while export: " + blob);
+                    out.write(buffer, 0, read);
+                    length -= read;
+                }
+            } finally {
+                is.close();
+            }
+        } else {
+            out.writeLong(-1);
+        }
+        HashMap<String,Key> childs = k.Childs();
+        if (childs == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(childs.size());
+        for (Key child : childs.values()) {
+            writeSnapshotKey(out, child, buffer);
+        }
+    }
+
+    /**
+     * skip rest of key record (after name), used for keys of unavailable store
+     */
+    static void skipSnapshotKey(DataInputStream in) throws IOException {
+        in.readInt();
+        in.readLong();
+        in.readLong();
+        readSnapshotString(in);
+        long length = in.readLong();
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                in.readByte();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+        int childs = in.readInt();
+        for (int i = 0; i < childs; i++) {
+            readSnapshotString(in);
+            skipSnapshotKey(in);
+        }
+    }
+
+    SnapshotImport newSnapshotImport() {
+        return new SnapshotImport();
+    }
+
+    /**
+     * one import transaction; blobs are written to temporary files, after commit
+     * old blob files of replaced keys are deleted and temporary files renamed into place
+     * (row ids of deleted keys may be reused by imported ones), on rollback temporary files are deleted
+     */
+    class SnapshotImport {
+        private static final String TEMP_SUFFIX = ".import";
+        private SQLiteDatabase mDb;
+        private SQLiteStatement mInsert;
+        private boolean mOpen = false;
+        private int mSize = 0;
+        private final ArrayList<File> mCreated = new ArrayList<File>();
+        private final ArrayList<File> mReplaced = new ArrayList<File>();
+
+        int size() { return mSize; }
+
+        void importKey(String name, DataInputStream in, byte[] buffer) throws IOException {
+            if (!mOpen) {
+                mDb = mDatabaseHelper.getWritableDatabase();
+                if (mInsert == null) {
+                    mInsert = mDb.compileStatement("insert into pairs(parent,keyhash,keyname,value,flags,modified,expires) values (?,?,?,?,?,?,?)");
+                }
+                mDb.beginTransaction();
+                mOpen = true;
+            }
+            synchronized (BlobStore.this) {
+                mKeysCache.remove(name);
+            }
+            Key old = new Key(name);
+            if (old.Load()) old.delete(mReplaced);
+            readSnapshotKey(name, in, 0, buffer);
+            mSize++;
+        }
+
+        private void readSnapshotKey(String name, DataInputStream in, long parent, byte[] buffer) throws IOException {
+            int flags = in.readInt();
+            long modified = in.readLong();
+            long expires = in.readLong();
+            String value = readSnapshotString(in);
+            long length = in.readLong();
+            mInsert.bindLong(1, parent);
+            mInsert.bindLong(2, keyHash(name));
+            if (name == null) mInsert.bindNull(3); else mInsert.bindString(3, name);
+            if (value == null) mInsert.bindNull(4); else mInsert.bindString(4, value);
+            mInsert.bindLong(5, flags);
+            mInsert.bindLong(6, modified);
+            mInsert.bindLong(7, expires);
+            long id = mInsert.executeInsert();
+            mInsert.clearBindings();
+            if (id < 0) throw new IOException("could not import key " + name);
+            if (length >= 0) {
+                File blob = new File((flags & Key.VALUE_PERSISTENT)>0 ? mFileStoreDir : mCacheStoreDir, blob_name(id) + TEMP_SUFFIX);
+                if (mFanOut>0) blob.getParentFile().mkdirs();
+                mCreated.add(blob);
+                OutputStream out = new FileOutputStream(blob, false);
+                CRC32 crc = new CRC32();
+                try {
+                    while (length > 0) {
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+                        if (read < 0) throw new EOFException();
+                        out.write(buffer, 0, read);
+                        crc.update(buffer, 0, read);
+                        length -= read;
+                    }
+                } finally {
+                    out.close();
+                }
+                storeChecksum(id, crc.getValue());
+            }
+            int childs = in.readInt();
+            for (int i = 0; i < childs; i++) {
+                readSnapshotKey(readSnapshotString(in), in, id, buffer);
+            }
+        }
+
+        void commit() {
+            if (!mOpen) return;
+            mOpen = false;
+            try {
+                mDb.setTransactionSuccessful();
+                mDb.endTransaction();
+            } catch (RuntimeException e) {
+                deleteFiles(mCreated);
+                mReplaced.clear();
+                throw e;
+            }
+            deleteFiles(mReplaced);
+            for (File temp : mCreated) {
+                String name = temp.getName();
+                File blob = new File(temp.getParentFile(), name.substring(0, name.length() - TEMP_SUFFIX.length()));
+                if (temp.exists() && !temp.renameTo(blob)) {
+                    Log.e(TAG, "could not move imported blob " + temp);
+                }
+            }
+            mCreated.clear();
+            mSize = 0;
+        }
+
+        /**
+         * roll back uncommitted keys and release statement
+         */
+        void close() {
+            if (mOpen) {
+                mOpen = false;
+                mDb.endTransaction();
+                deleteFiles(mCreated);
+                mReplaced.clear();
+                mSize = 0;
+            }
+            if (mInsert != null) {
+                mInsert.close();
+                mInsert = null;
+            }
+        }
+
+        private void deleteFiles(ArrayList<File> files) {
+            for (File f : files) {
+                if (f.exists()) f.delete();
+            }
+            files.clear();
+        }
+    }
+
+    private static void writeSnapshotString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readSnapshotString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
     /* BlobStoreDatabase */
-    private static int DB_VERSION = 1;
+    private static int DB_VERSION = 4;
+
+    /**
+     * 64-bit FNV-1a hash of key name, String.hashCode() collides too often for long urls
+     */
+    static long keyHash(String name) {
+        if (name==null) return 0;
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
 
     private DatabaseHelper getDatabaseHelper() {
         return new DatabaseHelper(mDataBaseDir.getAbsolutePath(),"blobstore", null, DB_VERSION) {
+            // blobs of rows dropped by migration, deleted after version transaction is committed
+            private final ArrayList<File> mDropped = new ArrayList<File>();
+
             @Override
             protected void onCreate(SQLiteDatabase db) {
-                db.execSQL("create table pairs(_id integer primary key, parent integer default 0, keyhash integer, keyname text, value text, flags integer(1), modified integer)");
-                db.execSQL("create index pairs_idx on pairs(parent,keyhash)");
+                db.execSQL("create table pairs(_id integer primary key, parent integer default 0, keyhash integer, keyname text, value text, flags integer(1), modified integer, expires integer default 0, checksum integer)");
+                db.execSQL("create unique index pairs_key_idx on pairs(parent,keyhash,keyname)");
+                db.execSQL("create index pairs_expires_idx on pairs(expires)");
             }
 
             @Override
             protected void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+                mDropped.clear();
+                if (oldVersion < 2) {
+                    db.execSQL("alter table pairs add column expires integer default 0");
+                    db.execSQL("create index pairs_expires_idx on pairs(expires)");
+                }
+                if (oldVersion < 3) {
+                    upgradeKeyIndex(db, mDropped);
+                }
+                if (oldVersion < 4) {
+                    db.execSQL("alter table pairs add column checksum integer");
+                }
+            }
 
+            @Override
+            protected void onOpen(SQLiteDatabase db) {
+                for (File f : mDropped) {
+                    if (f.exists()) f.delete();
+                }
+                mDropped.clear();
             }
         };
     }
 
 
 
+    /**
+     * schema v3: rehash keys with 64-bit hash, drop duplicated keys and
+     * replace (parent,keyhash) index with unique (parent,keyhash,keyname)
+     * @param dropped receives blob files of deleted rows, they must be deleted only after commit
+     */
+    private void upgradeKeyIndex(SQLiteDatabase db, ArrayList<File> dropped) {
+        db.execSQL("drop index if exists pairs_idx");
+        SQLiteStatement rehash = db.compileStatement("update pairs set keyhash=? where _id=?");
+        Cursor c = db.query("pairs", new String[]{"_id","keyname"}, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                rehash.bindLong(1, keyHash(c.getString(1)));
+                rehash.bindLong(2, c.getLong(0));
+                rehash.execute();
+            }
+        } finally {
+            c.close();
+            rehash.close();
+        }
+        // keep latest row of duplicated keys, they was created by concurrent Commit()
+        deleteRowsWithBlobs(db, "_id not in (select max(_id) from pairs group by parent,keyname)", dropped);
+        // descendants of dropped keys, level by level
+        while (deleteRowsWithBlobs(db, "parent<>0 and parent not in (select _id from pairs)", dropped) > 0);
+        db.execSQL("create unique index pairs_key_idx on pairs(parent,keyhash,keyname)");
+    }
+
+    private int deleteRowsWithBlobs(SQLiteDatabase db, String where, ArrayList<File> dropped) {
+        Cursor c = db.query("pairs", new String[]{"_id","flags"}, where, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                int flags = c.getInt(1);
+                if ((flags & Key.VALUE_DATA)==0) {
+                    dropped.add(new File((flags & Key.VALUE_PERSISTENT)>0 ? mFileStoreDir : mCacheStoreDir, blob_name(id)));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return db.delete("pairs", where, null);
+    }
+
+    /**
+     * existence check with precompiled statement, covered by pairs_key_idx
+     * @return key _id or -1
+     */
+    private long queryKeyId(long parent, long hash, String name) {
+        SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
+        synchronized (mStatementLock) {
+            prepareStatements(db);
+            mKeyIdStatement.bindLong(1, parent);
+            mKeyIdStatement.bindLong(2, hash);
+            if (name==null) mKeyIdStatement.bindNull(3);
+            else mKeyIdStatement.bindString(3, name);
+            try {
+                return mKeyIdStatement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return -1;
+            } finally {
+                mKeyIdStatement.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * modified time of row, if it is still stored under given key
+     * @return modified or -1 when row deleted or replaced
+     */
+    private long queryModified(long id, long parent, long hash, String name) {
+        SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
+        synchronized (mStatementLock) {
+            prepareStatements(db);
+            mModifiedStatement.bindLong(1, id);
+            mModifiedStatement.bindLong(2, parent);
+            mModifiedStatement.bindLong(3, hash);
+            if (name==null) mModifiedStatement.bindNull(4);
+            else mModifiedStatement.bindString(4, name);
+            try {
+                return mModifiedStatement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return -1;
+            } finally {
+                mModifiedStatement.clearBindings();
+            }
+        }
+    }
+
+    private void prepareStatements(SQLiteDatabase db) {
+        if (mKeyIdStatement!=null && mKeyIdStatementDb==db) return;
+        closeStatements();
+        mKeyIdStatement = db.compileStatement("select _id from pairs where parent=? and keyhash=? and keyname=?");
+        mModifiedStatement = db.compileStatement("select modified from pairs where _id=? and parent=? and keyhash=? and keyname=?");
+        mKeyIdStatementDb = db;
+    }
+
     public class Key {
         static final int VALUE_FILE = 1;
         static final int VALUE_DATA = 2;
         static final int VALUE_EMPTY = 4;
         static final int VALUE_PERSISTENT = 8;
+        static final String[] PROJECTION = new String[]{"_id","keyname","flags","modified","value","expires","keyhash","checksum"};
+        static final int COLUMN_ID = 0;
+        static final int COLUMN_KEYNAME = 1;
+        static final int COLUMN_FLAGS = 2;
+        static final int COLUMN_MODIFIED = 3;
+        static final int COLUMN_VALUE = 4;
+        static final int COLUMN_EXPIRES = 5;
+        static final int COLUMN_KEYHASH = 6;
+        static final int COLUMN_CHECKSUM = 7;
         private long mId = -1;
         private Key mParent;
         private String mName;
         private int mFlags = VALUE_EMPTY;
         private String mValue;
-        private int mModified;
+        private long mModified;
+        private long mExpires = 0;
+        private long mHash;
+        private long mChecksum = -1;
         // private Key[] mChilds = null;
         private HashMap<String,Key> mChilds = null; // new HashMap<String,Key>();
 
@@ -286,6 +1127,7 @@ public class BlobStore {
                 Log.e("BS:KEY", "name are null");
             }
             mName = name;
+            mHash = keyHash(name);
             mId = -1;
         }
 
@@ -294,18 +1136,34 @@ public class BlobStore {
             mFlags = flags;
         }
 
+        /**
+         * already loaded key only verified by precompiled lookup of row modified time,
+         * row fetched again only if it was deleted, replaced or modified
+         * (changes within same millisecond by other Key instance are not noticed)
+         */
         public boolean Load() {
+            if (mDatabaseHelper==null) return false;
+            long start = mMetrics.start();
+            long parent = mParent==null? 0 : mParent.mId;
+            if (mId>=0 && queryModified(mId, parent, mHash, mName)==mModified) {
+                mMetrics.stop(BlobStoreMetrics.Timer.QUERY, start);
+                return true;
+            }
             SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
-            Cursor c = db.query("pairs",new String[]{"_id","keyname","flags","modified","value"},"parent=? AND keyhash=? AND keyname=?",
-                    new String[] {String.valueOf(mParent==null? 0 : mParent.mId), String.valueOf(mName.hashCode()), mName},null,null,null);
-            if (c.moveToFirst()) {
-                fromCursor(c);
-            } else {
-                c.close();
+            Cursor c = db.query("pairs",PROJECTION,"parent=? AND keyhash=? AND keyname=?",
+                    new String[] {String.valueOf(parent), String.valueOf(mHash), mName},null,null,null);
+            try {
+                if (c.moveToFirst()) {
+                    fromCursor(c);
+                    return true;
+                }
+                mId = -1;
+                releaseChilds();
                 return false;
+            } finally {
+                c.close();
+                mMetrics.stop(BlobStoreMetrics.Timer.QUERY, start);
             }
-            c.close();
-            return true;
         }
 
         private Key(Key parent, String name) {
@@ -318,11 +1176,16 @@ public class BlobStore {
         }
 
         private void fromCursor(Cursor cursor) {
-            mId = cursor.getLong(cursor.getColumnIndex("_id"));
-            mName = cursor.getString(cursor.getColumnIndex("keyname"));
-            mFlags = cursor.getInt(cursor.getColumnIndex("flags"));
-            mModified = cursor.getInt(cursor.getColumnIndex("modified"));
-            mValue = cursor.getString(cursor.getColumnIndex("value"));
+            long id = cursor.getLong(COLUMN_ID);
+            if (id!=mId) releaseChilds();
+            mId = id;
+            mName = cursor.getString(COLUMN_KEYNAME);
+            mHash = cursor.getLong(COLUMN_KEYHASH);
+            mFlags = cursor.getInt(COLUMN_FLAGS);
+            mModified = cursor.getLong(COLUMN_MODIFIED);
+            mValue = cursor.getString(COLUMN_VALUE);
+            mExpires = cursor.getLong(COLUMN_EXPIRES);
+            mChecksum = cursor.isNull(COLUMN_CHECKSUM) ? -1 : cursor.getLong(COLUMN_CHECKSUM);
         }
 
         public Key(Key parent, Cursor cursor) {
@@ -331,6 +1194,21 @@ public class BlobStore {
         }
 
         public Key getParent() { return mParent; }
+        public long getExpires() { return mExpires; }
+
+        /**
+         * @param expires absolute time in milliseconds, 0 - never expires (stored on Commit)
+         */
+        public void setExpires(long expires) { mExpires = expires; }
+
+        /**
+         * @param ttl time to live in milliseconds from now, 0 - never expires (stored on Commit)
+         */
+        public void setTTL(long ttl) { mExpires = ttl > 0 ? System.currentTimeMillis() + ttl : 0; }
+
+        public boolean isExpired() {
+            return mExpires > 0 && mExpires < System.currentTimeMillis();
+        }
         public boolean hasParent() { return mParent!=null; }
 
         /**
@@ -338,15 +1216,26 @@ public class BlobStore {
          */
 
         public void Delete() {
+            delete(null);
+        }
+
+        /**
+         * @param deferred if not null, blob files are added to it instead of being deleted
+         */
+        private void delete(ArrayList<File> deferred) {
             if (mId<0) return;
-            if (mChilds!=null) {
-                for(Key c : mChilds.values()) c.Delete();
+            HashMap<String,Key> childs = Childs();
+            if (childs!=null) {
+                for(Key c : childs.values()) c.delete(deferred);
             }
-            if ((mFlags & VALUE_FILE)==VALUE_FILE) {
-                if ((mFlags & VALUE_PERSISTENT)>0) {
-                    delete_file(String.format("%s.dat",mId));
+            // keys created by openCacheStream() keep VALUE_EMPTY flags but have blob
+            if ((mFlags & VALUE_DATA)==0) {
+                if (deferred!=null) {
+                    deferred.add(blob_file(this));
+                } else if ((mFlags & VALUE_PERSISTENT)>0) {
+                    delete_file(blob_name(mId));
                 } else {
-                    delete_cache(String.format("%s.dat",mId));
+                    delete_cache(blob_name(mId));
                 }
             }
             SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
@@ -359,15 +1248,22 @@ public class BlobStore {
             if ((flags & VALUE_FILE) == 0) throw new IllegalStateException();
             OutputStream out;
             if ((flags & VALUE_PERSISTENT)>0) {
-                out = get_file_output_stream(String.format("%s.dat",mId));
+                out = get_file_output_stream(blob_name(mId));
             } else {
-                out = get_cache_output_stream(String.format("%s.dat",mId));
+                out = get_cache_output_stream(blob_name(mId));
             }
-            byte[] buffer = new byte[65535];
-            for(int read = stream.read(buffer);read>-1; read = stream.read(buffer)) {
-                out.write(buffer,0,read);
+            CRC32 crc = new CRC32();
+            byte[] buffer = mBufferPool.acquire();
+            try {
+                for (int read = stream.read(buffer); read > -1; read = stream.read(buffer)) {
+                    out.write(buffer, 0, read);
+                    crc.update(buffer, 0, read);
+                }
+            } finally {
+                mBufferPool.release(buffer);
+                out.close();
             }
-            out.close();
+            storeChecksum(crc.getValue());
         }
 
         public void Put(InputStream stream) throws IOException {
@@ -386,6 +1282,11 @@ public class BlobStore {
                         os.write(oneByte);
                     }
 
+                    @Override
+                    public void write(byte[] buffer, int offset, int count) {
+                        os.write(buffer, offset, count);
+                    }
+
                     @Override
                     public void close() {
                         mValue = new String(os.toByteArray());
@@ -394,11 +1295,57 @@ public class BlobStore {
 
             }
             if ((mFlags & VALUE_PERSISTENT)>0) {
-                return get_file_output_stream(String.format("%s.dat",mId));
+                return checksummed(mBufferPool.buffered(get_file_output_stream(blob_name(mId))));
             }
-            return get_cache_output_stream(String.format("%s.dat",mId));
+            return checksummed(mBufferPool.buffered(get_cache_output_stream(blob_name(mId))));
+        }
+
+        /**
+         * compute checksum of written data, stored on close()
+         */
+        private OutputStream checksummed(final OutputStream out) {
+            return new OutputStream() {
+                private final CRC32 mCrc = new CRC32();
+                private boolean mClosed = false;
+
+                @Override
+                public void write(int oneByte) throws IOException {
+                    out.write(oneByte);
+                    mCrc.update(oneByte);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int count) throws IOException {
+                    out.write(buffer, offset, count);
+                    mCrc.update(buffer, offset, count);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (mClosed) return;
+                    mClosed = true;
+                    out.close();
+                    storeChecksum(mCrc.getValue());
+                }
+            };
         }
 
+        private void storeChecksum(long checksum) {
+            mChecksum = checksum;
+            mModified = (new Date()).getTime();
+            ContentValues cv = new ContentValues();
+            cv.put("checksum", checksum);
+            cv.put("modified", mModified);
+            mDatabaseHelper.getWritableDatabase().update("pairs", cv, "_id=?", new String[]{String.valueOf(mId)});
+        }
+
+        public long getChecksum() { return mChecksum; }
+
         public void Put(String data) {
             if ((mFlags & VALUE_DATA)==0) throw new IllegalStateException();
             mValue = data;
@@ -408,10 +1355,77 @@ public class BlobStore {
             if ((mFlags&VALUE_DATA)==VALUE_DATA) {
                 return new ByteArrayInputStream(mValue.getBytes());
             }
+            InputStream is;
             if ((mFlags&VALUE_PERSISTENT)>0) {
-                return get_file_input_stream(String.format("%s.dat", mId));
+                is = get_file_input_stream(blob_name(mId));
+            } else {
+                is = get_cache_input_stream(blob_name(mId));
             }
-            return get_cache_input_stream(String.format("%s.dat", mId));
+            if (mVerifyOnRead && mChecksum>=0) return verified(is, blob_file(this).length());
+            return is;
+        }
+
+        /**
+         * check checksum when stream reaches end (or is closed after reading whole blob),
+         * corrupted key dropped and IOException thrown
+         */
+        private InputStream verified(InputStream is, final long length) {
+            return new FilterInputStream(is) {
+                private final CRC32 mCrc = new CRC32();
+                private boolean mChecked = false;
+                private long mRead = 0;
+
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b > -1) {
+                        mCrc.update(b);
+                        mRead++;
+                    } else check();
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read > 0) {
+                        mCrc.update(buffer, offset, read);
+                        mRead += read;
+                    } else if (read < 0) check();
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        // readers with known content length stop without reading end of stream
+                        if (mRead == length) check();
+                    } finally {
+                        super.close();
+                    }
+                }
+
+                @Override
+                public long skip(long count) throws IOException {
+                    // skipped bytes can't be verified
+                    mChecked = true;
+                    return super.skip(count);
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+
+                private void check() throws IOException {
+                    if (mChecked) return;
+                    mChecked = true;
+                    if (mCrc.getValue() != mChecksum) {
+                        dropCorrupted(Key.this);
+                        throw new IOException("checksum mismatch for " + mName);
+                    }
+                }
+            };
         }
 
         public Key Add(String name, InputStream value) throws IOException {
@@ -452,9 +1466,10 @@ public class BlobStore {
                 if (mChilds!=null) return mChilds;
             }
             mChilds = new HashMap<String,Key>();
+            long start = mMetrics.start();
             SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
 
-            Cursor c = db.query("pairs", new String[]{"_id","keyname", "value", "flags", "modified"}, "parent=?",
+            Cursor c = db.query("pairs", PROJECTION, "parent=?",
                     new String[]{String.valueOf(mId)}, null, null, null);
             if (c.moveToFirst()) {
                 // Key[] result = new Key[c.getCount()];
@@ -462,21 +1477,35 @@ public class BlobStore {
                     Key cc = new Key(this,c);
                     mChilds.put(cc.GetName(),cc);
                 } while(c.moveToNext());
+                c.close();
+                mMetrics.stop(BlobStoreMetrics.Timer.QUERY, start);
                 return mChilds;
             }
+            c.close();
+            mMetrics.stop(BlobStoreMetrics.Timer.QUERY, start);
             return null;
         }
 
+        synchronized void releaseChilds() {
+            if (mChilds!=null) {
+                for (Key c : mChilds.values()) c.releaseChilds();
+                mChilds = null;
+            }
+        }
+
         protected synchronized void invalidateChild() {
             if (mChilds!=null) mChilds = null;
             if (mParent!=null) mParent.invalidateChild();
         }
 
         public long Commit() {
+            if (mDatabaseHelper==null) throw new IllegalStateException("blob store not available");
             SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
             ContentValues cv = new ContentValues();
-            cv.put("modified",(new Date()).getTime());
+            mModified = (new Date()).getTime();
+            cv.put("modified",mModified);
             cv.put("flags", mFlags);
+            cv.put("expires", mExpires);
             if ((mFlags & VALUE_DATA)>0) {
                 cv.put("value",mValue);
             }
@@ -486,11 +1515,14 @@ public class BlobStore {
                     cv.put("parent",mParent.mId);
                 }
                 cv.put("keyname",mName);
-                cv.put("keyhash",mName.hashCode());
+                cv.put("keyhash",mHash);
                 mId = db.insert("pairs",null,cv);
-            } else {
-                db.update("pairs",cv,"_id=?",new String[] { String.valueOf(mId)});
+                if (mId>=0) return mId;
+                // unique key violation - key was committed concurrently, update it with our values
+                mId = queryKeyId(mParent==null? 0 : mParent.mId, mHash, mName);
+                if (mId<0) return mId;
             }
+            db.update("pairs",cv,"_id=?",new String[] { String.valueOf(mId)});
             return mId;
         }
 
@@ -516,10 +1548,20 @@ public class BlobStore {
         }
 
         public boolean Exists() {
+            if (mId>=0) return queryKeyId(mParent==null? 0 : mParent.mId, mHash, mName)==mId;
             return Load();
         }
     }
 
+    private String blob_name(long id) {
+        if (mFanOut>0) return String.format("%02x/%s.dat", id % mFanOut, id);
+        return String.format("%s.dat", id);
+    }
+
+    private File blob_file(Key k) {
+        return new File((k.mFlags & Key.VALUE_PERSISTENT)>0 ? mFileStoreDir : mCacheStoreDir, blob_name(k.mId));
+    }
+
     private void delete_file(String name) {
         File del = new File(mFileStoreDir,name);
         if (del.exists()) {
@@ -543,6 +1585,7 @@ public class BlobStore {
 
     private OutputStream get_file_output_stream(String name) throws IOException {
         File out = new File(mFileStoreDir,name);
+        if (mFanOut>0) out.getParentFile().mkdirs();
         if (out.createNewFile())
             return new FileOutputStream(out);
         throw new IOException();
@@ -550,6 +1593,7 @@ public class BlobStore {
 
     private OutputStream get_cache_output_stream(String name) throws IOException {
         File out = new File(mCacheStoreDir,name);
+        if (mFanOut>0) out.getParentFile().mkdirs();
         if (out.createNewFile())
             return new FileOutputStream(out);
         throw new IOException(); // file exists
@@ -0,0 +1,202 @@
+package su.whs.wblobstore;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for cache and network operations
+ *
+ * disabled by default, while disabled every call returns immediately
+ * without touching shared state or reading the clock
+ */
+public class BlobStoreMetrics {
+
+    public enum Counter {
+        LOOKUP_HIT,
+        LOOKUP_MISS,
+        PUT,
+        DELETE,
+        EVICTION,
+        FETCH,
+        FETCH_ERROR_TIMEOUT,
+        FETCH_ERROR_PROTOCOL,
+        FETCH_ERROR_IO,
+        BYTES_FROM_CACHE,
+        BYTES_FROM_NETWORK,
+        BUFFER_ALLOCATED,
+        BUFFER_REUSED,
+        CORRUPTED
+    }
+
+    public enum Timer {
+        LOOKUP,
+        QUERY,
+        PUT,
+        DELETE,
+        FETCH_TTFB,
+        FETCH_TOTAL
+    }
+
+    /**
+     * receive every recorded value, called on the thread that performed the operation
+     */
+    public interface Listener {
+        void onCounter(Counter counter, long delta);
+        void onTimer(Timer timer, long nanos);
+    }
+
+    /**
+     * latency histogram with power-of-two microsecond buckets
+     * (bucket i holds values in [2^(i-1), 2^i) us, bucket 0 holds values below 1us)
+     */
+    public static class Histogram {
+        public static final int BUCKETS = 32;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long nanos) {
+            long us = nanos / 1000;
+            int bucket = us <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(us));
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mSum.addAndGet(nanos);
+            long max;
+            do {
+                max = mMax.get();
+            } while (nanos > max && !mMax.compareAndSet(max, nanos));
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) mBuckets.set(i, 0);
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        public long getCount() { return mCount.get(); }
+        public long getSumNanos() { return mSum.get(); }
+        public long getMaxNanos() { return mMax.get(); }
+        public long getBucket(int i) { return mBuckets.get(i); }
+
+        public long getMeanNanos() {
+            long count = mCount.get();
+            return count > 0 ? mSum.get() / count : 0;
+        }
+
+        /**
+         * @return upper bound (in nanoseconds) of the bucket containing given percentile
+         */
+        public long getPercentileNanos(double percentile) {
+            long count = mCount.get();
+            if (count == 0) return 0;
+            long threshold = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= threshold) return (1L << i) * 1000;
+            }
+            return mMax.get();
+        }
+    }
+
+    private volatile boolean mEnabled = false;
+    private volatile Listener mListener = null;
+    private final AtomicLong[] mCounters = new AtomicLong[Counter.values().length];
+    private final Histogram[] mHistograms = new Histogram[Timer.values().length];
+
+    public BlobStoreMetrics() {
+        for (int i = 0; i < mCounters.length; i++) mCounters[i] = new AtomicLong();
+        for (int i = 0; i < mHistograms.length; i++) mHistograms[i] = new Histogram();
+    }
+
+    public boolean isEnabled() { return mEnabled; }
+    public void setEnabled(boolean enabled) { mEnabled = enabled; }
+    public void setListener(Listener listener) { mListener = listener; }
+
+    /**
+     * @return start mark for {@link #stop(Timer, long)}, 0 when disabled
+     */
+    public long start() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    public void stop(Timer timer, long start) {
+        if (!mEnabled || start == 0) return;
+        long nanos = System.nanoTime() - start;
+        mHistograms[timer.ordinal()].record(nanos);
+        Listener l = mListener;
+        if (l != null) l.onTimer(timer, nanos);
+    }
+
+    public void increment(Counter counter) {
+        add(counter, 1);
+    }
+
+    public void add(Counter counter, long delta) {
+        if (!mEnabled) return;
+        mCounters[counter.ordinal()].addAndGet(delta);
+        Listener l = mListener;
+        if (l != null) l.onCounter(counter, delta);
+    }
+
+    public long getCount(Counter counter) {
+        return mCounters[counter.ordinal()].get();
+    }
+
+    public Histogram getHistogram(Timer timer) {
+        return mHistograms[timer.ordinal()];
+    }
+
+    public double getHitRatio() {
+        long hits = getCount(Counter.LOOKUP_HIT);
+        long total = hits + getCount(Counter.LOOKUP_MISS);
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    public void reset() {
+        for (AtomicLong c : mCounters) c.set(0);
+        for (Histogram h : mHistograms) h.reset();
+    }
+
+    /**
+     * wrap stream to count bytes read into given counter, returns stream as-is when disabled
+     */
+    public InputStream countBytes(InputStream stream, final Counter counter) {
+        if (!mEnabled || stream == null) return stream;
+        return new FilterInputStream(stream) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b > -1) add(counter, 1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int read = super.read(buffer, offset, count);
+                if (read > 0) add(counter, read);
+                return read;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Counter c : Counter.values()) {
+            sb.append(c.name()).append('=').append(getCount(c)).append('\n');
+        }
+        for (Timer t : Timer.values()) {
+            Histogram h = getHistogram(t);
+            sb.append(String.format("%s: count=%d mean=%dus p50=%dus p99=%dus max=%dus\n",
+                    t.name(), h.getCount(), h.getMeanNanos() / 1000, h.getPercentileNanos(50) / 1000,
+                    h.getPercentileNanos(99) / 1000, h.getMaxNanos() / 1000));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package su.whs.wblobstore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded thread-safe pool of fixed size heap buffers for copy paths
+ *
+ * only heap buffers are pooled, copy paths use stream and CRC32 apis
+ * that accept byte[] only, so direct buffers would need an extra copy
+ *
+ * buffers not returned to pool are simply collected by gc,
+ * buffers returned over the limit are dropped
+ */
+public class BufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_BUFFERS = 8;
+
+    private final int mBufferSize;
+    private final int mMaxBuffers;
+    private final ArrayDeque<byte[]> mHeap = new ArrayDeque<byte[]>();
+    private BlobStoreMetrics mMetrics;
+
+    public BufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_BUFFERS);
+    }
+
+    public BufferPool(int bufferSize, int maxBuffers) {
+        mBufferSize = bufferSize;
+        mMaxBuffers = maxBuffers;
+    }
+
+    void setMetrics(BlobStoreMetrics metrics) { mMetrics = metrics; }
+
+    public int getBufferSize() { return mBufferSize; }
+
+    public byte[] acquire() {
+        synchronized (mHeap) {
+            byte[] buffer = mHeap.pollFirst();
+            if (buffer != null) {
+                count(BlobStoreMetrics.Counter.BUFFER_REUSED);
+                return buffer;
+            }
+        }
+        count(BlobStoreMetrics.Counter.BUFFER_ALLOCATED);
+        return new byte[mBufferSize];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != mBufferSize) return;
+        synchronized (mHeap) {
+            if (mHeap.size() < mMaxBuffers) mHeap.offerFirst(buffer);
+        }
+    }
+
+    /**
+     * drop all pooled buffers
+     */
+    public void clear() {
+        synchronized (mHeap) {
+            mHeap.clear();
+        }
+    }
+
+    /**
+     * buffered output stream with pooled buffer, buffer returned to pool on close()
+     */
+    public OutputStream buffered(final OutputStream out) {
+        return new OutputStream() {
+            private byte[] mBuffer = acquire();
+            private int mCount = 0;
+
+            @Override
+            public void write(int oneByte) throws IOException {
+                ensureOpen();
+                if (mCount == mBuffer.length) flushBuffer();
+                mBuffer[mCount++] = (byte) oneByte;
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                ensureOpen();
+                if (count >= mBuffer.length) {
+                    flushBuffer();
+                    out.write(buffer, offset, count);
+                    return;
+                }
+                if (count > mBuffer.length - mCount) flushBuffer();
+                System.arraycopy(buffer, offset, mBuffer, mCount, count);
+                mCount += count;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                ensureOpen();
+                flushBuffer();
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (mBuffer == null) return;
+                try {
+                    flushBuffer();
+                } finally {
+                    release(mBuffer);
+                    mBuffer = null;
+                    out.close();
+                }
+            }
+
+            private void ensureOpen() throws IOException {
+                if (mBuffer == null) throw new IOException("stream closed");
+            }
+
+            private void flushBuffer() throws IOException {
+                if (mCount > 0) {
+                    out.write(mBuffer, 0, mCount);
+                    mCount = 0;
+                }
+            }
+        };
+    }
+
+    private void count(BlobStoreMetrics.Counter counter) {
+        BlobStoreMetrics metrics = mMetrics;
+        if (metrics != null) metrics.increment(counter);
+    }
+}
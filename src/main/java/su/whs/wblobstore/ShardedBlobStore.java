@@ -0,0 +1,176 @@
+package su.whs.wblobstore;
+
+import android.content.Context;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Set of BlobStore shards selected by url hash
+ *
+ * each shard has own sqlite database (and writer) and own blob directories
+ * with subdirectory fan-out, shards are distributed over given volume roots
+ *
+ * shard on unavailable volume (for example unmounted external storage) is kept
+ * as always-miss: lookups return null, writes throw IOException, maintenance skips it
+ */
+public class ShardedBlobStore {
+    public static final int DEFAULT_FAN_OUT = 256;
+
+    private final BlobStore[] mShards;
+
+    /**
+     * @param roots base directories (for example internal and external files dir), shard i placed into roots[i % roots.length]
+     * @param shards number of shards, must not be changed for existing store
+     */
+    public ShardedBlobStore(@NotNull Context context, @NotNull File[] roots, int shards) {
+        this(context, roots, shards, DEFAULT_FAN_OUT);
+    }
+
+    public ShardedBlobStore(@NotNull Context context, @NotNull File[] roots, int shards, int fanOut) {
+        if (roots.length < 1 || shards < 1) throw new IllegalArgumentException();
+        mShards = new BlobStore[shards];
+        for (int i = 0; i < shards; i++) {
+            File base = new File(roots[i % roots.length], String.format(".bshard%02d", i));
+            mShards[i] = new BlobStore(context,
+                    new File(base, ".bstore"),
+                    new File(base, ".bcache"),
+                    new File(base, ".databases"),
+                    fanOut);
+        }
+    }
+
+    public int getShardCount() { return mShards.length; }
+    public BlobStore getShard(int index) { return mShards[index]; }
+
+    /**
+     * @return shard responsible for url, pass it to UrlInputStreamProvider
+     */
+    public BlobStore getShard(String url) {
+        return mShards[shardIndex(url)];
+    }
+
+    private int shardIndex(String url) {
+        long h = BlobStore.keyHash(url);
+        int mixed = (int) (h ^ (h >>> 32)) & 0x7fffffff;
+        return mixed % mShards.length;
+    }
+
+    public BlobStore.Key getKey(String url) {
+        return getShard(url).getKey(url);
+    }
+
+    public InputStream getCachedStream(String url) {
+        return getShard(url).getCachedStream(url);
+    }
+
+    public OutputStream openCacheStream(String url) throws IOException {
+        return getShard(url).openCacheStream(url);
+    }
+
+    public OutputStream openCacheStream(String url, long ttl) throws IOException {
+        return getShard(url).openCacheStream(url, ttl);
+    }
+
+    public void removeKey(String url) {
+        getShard(url).removeKey(url);
+    }
+
+    public void attachProperty(String url, String name, String value) throws IOException {
+        getShard(url).attachProperty(url, name, value);
+    }
+
+    public String getAttachedProperty(String url, String name) {
+        return getShard(url).getAttachedProperty(url, name);
+    }
+
+    public int purgeExpired() {
+        int count = 0;
+        for (BlobStore bs : mShards) count += bs.purgeExpired();
+        return count;
+    }
+
+    public int scrub() {
+        int count = 0;
+        for (BlobStore bs : mShards) count += bs.scrub();
+        return count;
+    }
+
+    public void setVerifyOnRead(boolean verify) {
+        for (BlobStore bs : mShards) bs.setVerifyOnRead(verify);
+    }
+
+    public void startExpiryReaper(long periodMillis) {
+        for (BlobStore bs : mShards) bs.startExpiryReaper(periodMillis);
+    }
+
+    public void stopExpiryReaper() {
+        for (BlobStore bs : mShards) bs.stopExpiryReaper();
+    }
+
+    /**
+     * single archive with keys of all available shards, readable by BlobStore.importSnapshot() too
+     * @see BlobStore#exportSnapshot(OutputStream, String)
+     */
+    public int exportSnapshot(OutputStream stream, String prefix) throws IOException {
+        DataOutputStream out = BlobStore.beginSnapshot(stream);
+        int count = 0;
+        for (BlobStore bs : mShards) count += bs.writeSnapshotKeys(out, prefix);
+        BlobStore.endSnapshot(out);
+        return count;
+    }
+
+    /**
+     * import archive, every key goes to its shard, keys of unavailable shards are skipped
+     * @see BlobStore#importSnapshot(InputStream)
+     * @return number of imported top level keys
+     */
+    public int importSnapshot(InputStream stream) throws IOException {
+        DataInputStream in = BlobStore.openSnapshot(stream);
+        BlobStore.SnapshotImport[] batches = new BlobStore.SnapshotImport[mShards.length];
+        BufferPool pool = mShards[0].getBufferPool();
+        byte[] buffer = pool.acquire();
+        int count = 0;
+        try {
+            while (BlobStore.nextSnapshotKey(in)) {
+                String name = BlobStore.readSnapshotString(in);
+                int index = shardIndex(name);
+                if (!mShards[index].isAvailable()) {
+                    BlobStore.skipSnapshotKey(in);
+                    continue;
+                }
+                if (batches[index] == null) batches[index] = mShards[index].newSnapshotImport();
+                batches[index].importKey(name, in, buffer);
+                count++;
+                if (batches[index].size() >= BlobStore.SNAPSHOT_BATCH) batches[index].commit();
+            }
+            for (BlobStore.SnapshotImport batch : batches) {
+                if (batch != null) batch.commit();
+            }
+        } finally {
+            for (BlobStore.SnapshotImport batch : batches) {
+                if (batch != null) batch.close();
+            }
+            pool.release(buffer);
+        }
+        return count;
+    }
+
+    public void onTrimMemory(int level) {
+        for (BlobStore bs : mShards) bs.onTrimMemory(level);
+    }
+
+    public void onLowMemory() {
+        for (BlobStore bs : mShards) bs.onLowMemory();
+    }
+
+    public void setMinFreeSpace(long bytes) {
+        for (BlobStore bs : mShards) bs.setMinFreeSpace(bytes);
+    }
+}
@@ -9,13 +9,13 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -29,6 +29,9 @@ import su.whs.streamcache.StreamCache;
 
 /**
  * Provide ICacheAccessor implementation for http resources, with caching support
+ *
+ * stream returned by getSourceInputStream() reads http entity directly from connection,
+ * connection released only when stream closed, so caller must close it
  */
 
 public class UrlInputStreamProvider implements StreamCache.StreamsProvider {
@@ -57,14 +60,18 @@ public class UrlInputStreamProvider implements StreamCache.StreamsProvider {
         HttpParams httpParameters = new BasicHttpParams();
         HttpConnectionParams.setConnectionTimeout(httpParameters, getConnectionTimeout());
         HttpConnectionParams.setSoTimeout(httpParameters, getConnectionTimeout());
-        HttpClient client = new DefaultHttpClient(httpParameters);
+        final HttpClient client = new DefaultHttpClient(httpParameters);
 
         HttpGet request = new HttpGet(mUrl);
         if (mReferer!=null)
             request.addHeader("Referer",mReferer);
         HttpResponse response;
+        final BlobStoreMetrics metrics = mBlobStore.getMetrics();
+        final long start = metrics.start();
+        metrics.increment(BlobStoreMetrics.Counter.FETCH);
         try {
             response = client.execute(request);
+            metrics.stop(BlobStoreMetrics.Timer.FETCH_TTFB, start);
             HttpEntity entity = response.getEntity();
             Header mime = response.getFirstHeader("Content-Type");
             if (mime!=null) {
@@ -75,17 +82,69 @@ public class UrlInputStreamProvider implements StreamCache.StreamsProvider {
                 }
 
             }
-            BufferedHttpEntity bufferedEntity = new BufferedHttpEntity(entity);
-            InputStream inputStream = bufferedEntity.getContent();
-            return inputStream;
+            if (entity==null) {
+                client.getConnectionManager().shutdown();
+                return null;
+            }
+            // stream entity instead of buffering whole body, connection released on close()
+            InputStream content = metrics.countBytes(entity.getContent(), BlobStoreMetrics.Counter.BYTES_FROM_NETWORK);
+            return new FilterInputStream(content) {
+                private boolean mClosed = false;
+
+                @Override
+                public int read() throws IOException {
+                    try {
+                        return super.read();
+                    } catch (IOException e) {
+                        onStreamError(e);
+                        throw e;
+                    }
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    try {
+                        return super.read(buffer, offset, count);
+                    } catch (IOException e) {
+                        onStreamError(e);
+                        throw e;
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (mClosed) return;
+                    mClosed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        client.getConnectionManager().shutdown();
+                        metrics.stop(BlobStoreMetrics.Timer.FETCH_TOTAL, start);
+                    }
+                }
+
+                private void onStreamError(IOException e) {
+                    Log.e(TAG,"error read http stream:"+e);
+                    if (e instanceof SocketTimeoutException) {
+                        metrics.increment(BlobStoreMetrics.Counter.FETCH_ERROR_TIMEOUT);
+                        onConnectionError();
+                    } else {
+                        metrics.increment(BlobStoreMetrics.Counter.FETCH_ERROR_IO);
+                        onReadError();
+                    }
+                }
+            };
         } catch (ClientProtocolException e) {
             Log.e(TAG, "error read http stream:" + e);
             e.printStackTrace();
+            metrics.increment(BlobStoreMetrics.Counter.FETCH_ERROR_PROTOCOL);
             onReadError();
         } catch (SocketTimeoutException e) {
+            metrics.increment(BlobStoreMetrics.Counter.FETCH_ERROR_TIMEOUT);
             onConnectionError();
         } catch (IOException e) {
             Log.e(TAG,"error read http stream:"+e);
+            metrics.increment(BlobStoreMetrics.Counter.FETCH_ERROR_IO);
             e.printStackTrace();
             onReadError();
         }
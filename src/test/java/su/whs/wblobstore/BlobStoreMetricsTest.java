@@ -0,0 +1,94 @@
+package su.whs.wblobstore;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class BlobStoreMetricsTest {
+
+    @Test
+    public void histogram_bucketEdges() throws Exception {
+        BlobStoreMetrics.Histogram h = new BlobStoreMetrics.Histogram();
+        h.record(0);
+        h.record(999);
+        assertEquals(2, h.getBucket(0));
+        h.record(1000); // 1us
+        h.record(1999);
+        assertEquals(2, h.getBucket(1));
+        for (int k = 1; k < 20; k++) {
+            long us = 1L << k;
+            h.record(us * 1000);
+            assertEquals("2^" + k + "us", 1, h.getBucket(k + 1));
+            h.record((2 * us - 1) * 1000);
+            assertEquals("2^" + (k + 1) + "-1us", 2, h.getBucket(k + 1));
+        }
+        assertEquals(2 + 2 + 19 * 2, h.getCount());
+    }
+
+    @Test
+    public void histogram_overflowGoesToLastBucket() throws Exception {
+        BlobStoreMetrics.Histogram h = new BlobStoreMetrics.Histogram();
+        h.record(Long.MAX_VALUE);
+        assertEquals(1, h.getBucket(BlobStoreMetrics.Histogram.BUCKETS - 1));
+        assertEquals(Long.MAX_VALUE, h.getMaxNanos());
+    }
+
+    @Test
+    public void histogram_percentiles() throws Exception {
+        BlobStoreMetrics.Histogram h = new BlobStoreMetrics.Histogram();
+        assertEquals(0, h.getPercentileNanos(50));
+        for (int i = 0; i < 90; i++) h.record(1000);
+        for (int i = 0; i < 10; i++) h.record(1000 * 1000);
+        // 1us in bucket 1 (upper bound 2us), 1000us in bucket 10 (upper bound 1024us)
+        assertEquals(2000, h.getPercentileNanos(50));
+        assertEquals(2000, h.getPercentileNanos(90));
+        assertEquals(1024 * 1000, h.getPercentileNanos(91));
+        assertEquals(1024 * 1000, h.getPercentileNanos(99));
+        assertEquals(1024 * 1000, h.getPercentileNanos(100));
+        assertEquals((90 * 1000 + 10 * 1000 * 1000) / 100, h.getMeanNanos());
+        assertEquals(1000 * 1000, h.getMaxNanos());
+    }
+
+    @Test
+    public void histogram_reset() throws Exception {
+        BlobStoreMetrics.Histogram h = new BlobStoreMetrics.Histogram();
+        h.record(5000);
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMaxNanos());
+        assertEquals(0, h.getBucket(3));
+    }
+
+    @Test
+    public void disabled_recordsNothing() throws Exception {
+        BlobStoreMetrics m = new BlobStoreMetrics();
+        assertEquals(0, m.start());
+        m.increment(BlobStoreMetrics.Counter.PUT);
+        m.stop(BlobStoreMetrics.Timer.PUT, 1);
+        assertEquals(0, m.getCount(BlobStoreMetrics.Counter.PUT));
+        assertEquals(0, m.getHistogram(BlobStoreMetrics.Timer.PUT).getCount());
+        InputStream is = new ByteArrayInputStream(new byte[4]);
+        assertSame(is, m.countBytes(is, BlobStoreMetrics.Counter.BYTES_FROM_CACHE));
+    }
+
+    @Test
+    public void enabled_countsAndTimes() throws Exception {
+        BlobStoreMetrics m = new BlobStoreMetrics();
+        m.setEnabled(true);
+        m.stop(BlobStoreMetrics.Timer.LOOKUP, m.start());
+        m.increment(BlobStoreMetrics.Counter.LOOKUP_HIT);
+        m.increment(BlobStoreMetrics.Counter.LOOKUP_HIT);
+        m.increment(BlobStoreMetrics.Counter.LOOKUP_HIT);
+        m.increment(BlobStoreMetrics.Counter.LOOKUP_MISS);
+        assertEquals(1, m.getHistogram(BlobStoreMetrics.Timer.LOOKUP).getCount());
+        assertEquals(0.75, m.getHitRatio(), 0.0001);
+        InputStream is = m.countBytes(new ByteArrayInputStream(new byte[10]), BlobStoreMetrics.Counter.BYTES_FROM_CACHE);
+        is.read();
+        is.read(new byte[16], 0, 16);
+        assertEquals(-1, is.read());
+        assertEquals(10, m.getCount(BlobStoreMetrics.Counter.BYTES_FROM_CACHE));
+    }
+}
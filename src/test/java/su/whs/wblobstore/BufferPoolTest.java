@@ -0,0 +1,83 @@
+package su.whs.wblobstore;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void acquire_reusesReleasedBuffer() throws Exception {
+        BufferPool pool = new BufferPool(16, 2);
+        byte[] a = pool.acquire();
+        assertEquals(16, a.length);
+        pool.release(a);
+        assertSame(a, pool.acquire());
+    }
+
+    @Test
+    public void release_boundedAndSizeChecked() throws Exception {
+        BufferPool pool = new BufferPool(16, 1);
+        byte[] a = pool.acquire();
+        byte[] b = pool.acquire();
+        pool.release(a);
+        pool.release(b); // over limit, dropped
+        pool.release(new byte[8]); // foreign size, dropped
+        assertSame(a, pool.acquire());
+        assertNotSame(b, pool.acquire());
+    }
+
+    @Test
+    public void metrics_countAllocations() throws Exception {
+        BlobStoreMetrics metrics = new BlobStoreMetrics();
+        metrics.setEnabled(true);
+        BufferPool pool = new BufferPool(16, 2);
+        pool.setMetrics(metrics);
+        pool.release(pool.acquire());
+        pool.acquire();
+        assertEquals(1, metrics.getCount(BlobStoreMetrics.Counter.BUFFER_ALLOCATED));
+        assertEquals(1, metrics.getCount(BlobStoreMetrics.Counter.BUFFER_REUSED));
+    }
+
+    @Test
+    public void clear_dropsPooledBuffers() throws Exception {
+        BufferPool pool = new BufferPool(16, 2);
+        byte[] a = pool.acquire();
+        pool.release(a);
+        pool.clear();
+        assertNotSame(a, pool.acquire());
+    }
+
+    @Test
+    public void buffered_writesAllDataAndReturnsBuffer() throws Exception {
+        BlobStoreMetrics metrics = new BlobStoreMetrics();
+        metrics.setEnabled(true);
+        BufferPool pool = new BufferPool(16, 2);
+        pool.setMetrics(metrics);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        OutputStream out = pool.buffered(target);
+        byte[] expected = new byte[100];
+        for (int i = 0; i < expected.length; i++) expected[i] = (byte) i;
+        out.write(expected[0]);
+        out.write(expected, 1, 10);  // fits in buffer
+        out.write(expected, 11, 40); // larger than buffer, written through
+        for (int i = 51; i < 100; i++) out.write(expected[i]);
+        out.close();
+        assertArrayEquals(expected, target.toByteArray());
+        pool.acquire();
+        assertEquals(1, metrics.getCount(BlobStoreMetrics.Counter.BUFFER_REUSED));
+    }
+
+    @Test(expected = IOException.class)
+    public void buffered_writeAfterCloseThrowsIOException() throws Exception {
+        BufferPool pool = new BufferPool(16, 2);
+        OutputStream out = pool.buffered(new ByteArrayOutputStream());
+        out.close();
+        out.close(); // second close is no-op
+        out.write(1);
+    }
+}